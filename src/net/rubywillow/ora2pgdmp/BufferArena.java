@@ -0,0 +1,191 @@
+package net.rubywillow.ora2pgdmp;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BufferArena {
+
+  /*
+      Recycles the buffers used on the encode path so that, once every job is
+      up and running, formatting a record allocates next to nothing. There is
+      one arena for the whole program and all jobs share it.
+
+      Every acquire must be matched by a release. Each pool counts both, and
+      report() prints the counts at the end of the run along with anything
+      that was never handed back (a leak). The idle queues are bounded; a
+      buffer released to a full queue is simply dropped for the GC.
+
+      The output write buffers can be allocated off-heap (direct) or on-heap.
+  */
+
+  // size of the char[] and byte[] chunks used to move LOB data and flush records
+  public final static int CHUNK = 16384;
+  // starting size of a formatter's record buffer
+  public final static int BUILDER = 131072;
+  // a record buffer that grew past this (large LOBs) isn't worth keeping
+  private final static int MAX_BUILDER = 4194304;
+
+  private final static int IDLE = 256;
+  private final static int IDLE_ROWS = 1024;
+
+  private abstract static class Pool<T> {
+    private final String name;
+    private final ArrayBlockingQueue<T> idle;
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong released = new AtomicLong();
+
+    Pool( final String name_, final int maxIdle ) {
+      name = name_;
+      idle = new ArrayBlockingQueue<T>( maxIdle );
+    }
+
+    abstract T create();
+
+    T acquire() {
+      acquired.incrementAndGet();
+      T t = idle.poll();
+      if ( t == null ) {
+        allocated.incrementAndGet();
+        t = create();
+      }
+      return t;
+    }
+
+    void release( final T t, final boolean keep ) {
+      released.incrementAndGet();
+      if ( keep )
+        idle.offer( t );
+    }
+
+    void report( final PrintStream ps ) {
+      long outstanding = acquired.get() - released.get();
+      ps.println( String.format( "  %-24s %,14d acquired %,10d allocated %,8d idle", name, acquired.get(), allocated.get(), idle.size() )
+          + ( outstanding != 0 ? String.format( "  ** %,d never released **", outstanding ) : "" ) );
+    }
+  }
+
+  private final boolean offHeap;
+
+  private final Pool<StringBuilder> builders = new Pool<StringBuilder>( "record buffers", IDLE ) {
+    @Override
+    StringBuilder create() {
+      return new StringBuilder( BUILDER );
+    }
+  };
+
+  private final Pool<char[]> chars = new Pool<char[]>( "char chunks", IDLE ) {
+    @Override
+    char[] create() {
+      return new char[ CHUNK ];
+    }
+  };
+
+  private final Pool<byte[]> bytes = new Pool<byte[]>( "byte chunks", IDLE ) {
+    @Override
+    byte[] create() {
+      return new byte[ CHUNK ];
+    }
+  };
+
+  // row batches and write buffers come in as many sizes as there are column counts and buffer sizes
+  private final ConcurrentHashMap<Integer, Pool<Object[]>> rows = new ConcurrentHashMap<Integer, Pool<Object[]>>();
+  private final ConcurrentHashMap<Integer, Pool<ByteBuffer>> buffers = new ConcurrentHashMap<Integer, Pool<ByteBuffer>>();
+
+  public BufferArena( final boolean offHeap_ ) {
+    super();
+    offHeap = offHeap_;
+  }
+
+  public StringBuilder acquireBuilder() {
+    return builders.acquire();
+  }
+
+  public void releaseBuilder( final StringBuilder sb ) {
+    sb.setLength( 0 );
+    builders.release( sb, sb.capacity() <= MAX_BUILDER );
+  }
+
+  public char[] acquireChars() {
+    return chars.acquire();
+  }
+
+  public void releaseChars( final char[] c ) {
+    chars.release( c, true );
+  }
+
+  public byte[] acquireBytes() {
+    return bytes.acquire();
+  }
+
+  public void releaseBytes( final byte[] b ) {
+    bytes.release( b, true );
+  }
+
+  public Object[] acquireRows( final int length ) {
+    return rowPool( length ).acquire();
+  }
+
+  public void releaseRows( final Object[] r ) {
+    // don't hang on to the column values
+    Arrays.fill( r, null );
+    rowPool( r.length ).release( r, true );
+  }
+
+  public ByteBuffer acquireBuffer( final int capacity ) {
+    return bufferPool( capacity ).acquire();
+  }
+
+  public void releaseBuffer( final ByteBuffer b ) {
+    b.clear();
+    bufferPool( b.capacity() ).release( b, true );
+  }
+
+  private Pool<Object[]> rowPool( final int length ) {
+    Pool<Object[]> p = rows.get( length );
+    if ( p == null ) {
+      p = new Pool<Object[]>( "row batches [" + length + "]", IDLE_ROWS ) {
+        @Override
+        Object[] create() {
+          return new Object[ length ];
+        }
+      };
+      Pool<Object[]> prev = rows.putIfAbsent( length, p );
+      if ( prev != null )
+        p = prev;
+    }
+    return p;
+  }
+
+  private Pool<ByteBuffer> bufferPool( final int capacity ) {
+    Pool<ByteBuffer> p = buffers.get( capacity );
+    if ( p == null ) {
+      p = new Pool<ByteBuffer>( ( offHeap ? "direct" : "heap" ) + " buffers [" + capacity + "]", IDLE ) {
+        @Override
+        ByteBuffer create() {
+          return offHeap ? ByteBuffer.allocateDirect( capacity ) : ByteBuffer.allocate( capacity );
+        }
+      };
+      Pool<ByteBuffer> prev = buffers.putIfAbsent( capacity, p );
+      if ( prev != null )
+        p = prev;
+    }
+    return p;
+  }
+
+  public void report( final PrintStream ps ) {
+    ps.println( "Buffer arena:" );
+    builders.report( ps );
+    chars.report( ps );
+    bytes.report( ps );
+    for ( Pool<Object[]> p : rows.values() )
+      p.report( ps );
+    for ( Pool<ByteBuffer> p : buffers.values() )
+      p.report( ps );
+  }
+
+}
@@ -0,0 +1,116 @@
+package net.rubywillow.ora2pgdmp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class ChannelOutputStream extends OutputStream {
+
+  /*
+      Collects output in one large (normally direct) buffer and hands it to the FileChannel
+      a whole buffer at a time. The buffer size is a multiple of the filesystem
+      block size, so every write except the last one starts and ends on a block
+      boundary, and concurrent jobs hit the disk with a few big writes instead of
+      many small interleaved ones.
+  */
+
+  public enum Fsync {
+    // leave it to the operating system
+    NONE,
+    // force the file to disk once, when it is closed
+    CLOSE,
+    // force the file to disk after every buffer is written
+    ALWAYS
+  }
+
+  public final static int BLOCK = 4096;
+
+  private final FileOutputStream fos;
+  private final FileChannel channel;
+  private final ByteBuffer buf;
+  private final Fsync fsync;
+  private final boolean closeStream;
+  private final BufferArena arena;
+  private boolean closed = false;
+
+  public ChannelOutputStream( final File file, final BufferArena arena_, final int bufferSize, final Fsync fsync_ ) throws IOException {
+    this( new FileOutputStream( file ), arena_, bufferSize, fsync_, true );
+  }
+
+  // closeStream is false for streams we don't own, like stdout; they're flushed but left open.
+  public ChannelOutputStream( final FileOutputStream fos_, final BufferArena arena_, final int bufferSize, final Fsync fsync_, final boolean closeStream_ ) {
+    super();
+    fos = fos_;
+    channel = fos.getChannel();
+    arena = arena_;
+    // the buffer comes from (and goes back to) the arena, so jobs reuse each other's
+    buf = arena.acquireBuffer( align( bufferSize ) );
+    fsync = fsync_;
+    closeStream = closeStream_;
+  }
+
+  // round up to a whole number of blocks
+  public static int align( final int size ) {
+    if ( size <= BLOCK )
+      return BLOCK;
+    return ( ( size + BLOCK - 1 ) / BLOCK ) * BLOCK;
+  }
+
+  @Override
+  public void write( final int b ) throws IOException {
+    if ( !buf.hasRemaining() )
+      drain();
+    buf.put( (byte) b );
+  }
+
+  @Override
+  public void write( final byte[] b, final int off, final int len ) throws IOException {
+    int offs = off;
+    int remaining = len;
+    while ( remaining > 0 ) {
+      if ( !buf.hasRemaining() )
+        drain();
+      int n = Math.min( buf.remaining(), remaining );
+      buf.put( b, offs, n );
+      offs += n;
+      remaining -= n;
+    }
+  }
+
+  private void drain() throws IOException {
+    buf.flip();
+    while ( buf.hasRemaining() )
+      channel.write( buf );
+    buf.clear();
+
+    if ( fsync == Fsync.ALWAYS )
+      channel.force( false );
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if ( buf.position() > 0 )
+      drain();
+  }
+
+  @Override
+  public void close() throws IOException {
+    // a failed job may close us again; the buffer must only go back to the arena once
+    if ( closed )
+      return;
+    closed = true;
+    try {
+      flush();
+      if ( fsync != Fsync.NONE )
+        channel.force( true );
+    } finally {
+      arena.releaseBuffer( buf );
+      if ( closeStream )
+        fos.close();
+    }
+  }
+
+}
@@ -0,0 +1,143 @@
+package net.rubywillow.ora2pgdmp;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ColumnCache {
+
+  /*
+      Remembers the COPY text for the values of one column, so that columns with
+      only a handful of distinct values (status codes, country codes, flags...)
+      aren't escaped and converted over and over again. Oracle values are keyed
+      on their raw bytes; strings, decimals and timestamps (what the thin driver
+returns for DATE columns by default) are keyed on themselves.
+
+      Every column starts out sampling. If the first SAMPLE lookups turn up few
+      enough distinct values, the cache stays on, bounded to MAX_ENTRIES with an
+      arbitrary entry evicted to make room. Otherwise it switches itself off.
+      Once on, it switches itself off for good as soon as a WINDOW of lookups has
+      a hit rate below MIN_HIT_RATE.
+
+      The counters are shared by all of the formatter threads without any
+      synchronization. They are only used to make a decision, so losing the odd
+      update doesn't matter, and it is much cheaper than contending on them.
+  */
+
+  private final static int MAX_ENTRIES = 1024;
+  // longer values are very unlikely to repeat, and would make the cache big
+  private final static int MAX_KEY_LENGTH = 256;
+  private final static int SAMPLE = 4096;
+  private final static int SAMPLE_DISTINCT = 256;
+  private final static int WINDOW = 65536;
+  private final static double MIN_HIT_RATE = 0.5;
+
+  private final static int SAMPLING = 0;
+  private final static int ENABLED = 1;
+  private final static int DISABLED = 2;
+
+  private final ConcurrentHashMap<Object, String> map = new ConcurrentHashMap<Object, String>( 64, 0.75f, 16 );
+  private volatile int state = SAMPLING;
+  private int lookups = 0;
+  private int hits = 0;
+
+  // Oracle values are compared on their raw bytes. Each formatter keeps one
+  // of these to look values up with; a copy is made only when one is stored.
+  public static final class Key {
+    private byte[] bytes;
+    private int hash;
+
+    Key set( final byte[] bytes_ ) {
+      bytes = bytes_;
+      hash = Arrays.hashCode( bytes_ );
+      return this;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals( final Object o ) {
+      return o instanceof Key && hash == ( (Key) o ).hash && Arrays.equals( bytes, ( (Key) o ).bytes );
+    }
+  }
+
+  // The cache key for a value, or null if values of this type aren't cached.
+  // For Oracle values this is the probe passed in, so it must not be kept.
+  public static Object keyOf( final Object obj, final Key probe ) {
+    if ( obj instanceof oracle.sql.CHAR || obj instanceof oracle.sql.NUMBER || obj instanceof oracle.sql.DATE ) {
+      byte[] bytes = ( (oracle.sql.Datum) obj ).shareBytes();
+      return bytes.length <= MAX_KEY_LENGTH ? probe.set( bytes ) : null;
+    }
+    if ( obj instanceof String )
+      return ( (String) obj ).length() <= MAX_KEY_LENGTH ? obj : null;
+    if ( obj instanceof BigDecimal )
+      return obj;
+    // Timestamp.equals compares the nanoseconds as well as the milliseconds
+    if ( obj instanceof Timestamp )
+      return obj;
+    return null;
+  }
+
+  public boolean isActive() {
+    return state != DISABLED;
+  }
+
+  // The encoded value, or null on a miss.
+  public String get( final Object key ) {
+    if ( state == DISABLED )
+      return null;
+
+    String encoded = map.get( key );
+    int n = ++lookups;
+    if ( encoded != null )
+      hits++;
+
+    if ( state == SAMPLING ) {
+      if ( n >= SAMPLE )
+        decide( map.size() <= SAMPLE_DISTINCT );
+    } else if ( n >= WINDOW ) {
+      decide( hits >= WINDOW * MIN_HIT_RATE );
+    }
+    return encoded;
+  }
+
+  public void put( final Object key, final String encoded ) {
+    if ( state == DISABLED )
+      return;
+
+    if ( map.size() >= MAX_ENTRIES ) {
+      // still sampling and already past the limit; don't bother waiting for the rest
+      if ( state == SAMPLING ) {
+        decide( false );
+        return;
+      }
+      Iterator<Object> it = map.keySet().iterator();
+      if ( it.hasNext() ) {
+        it.next();
+        it.remove();
+      }
+    }
+    // the probe holds the value's own bytes (shareBytes), so the stored key gets a copy
+    if ( key instanceof Key )
+      map.put( new Key().set( ( (Key) key ).bytes.clone() ), encoded );
+    else
+      map.put( key, encoded );
+  }
+
+  private void decide( final boolean keep ) {
+    if ( keep ) {
+      state = ENABLED;
+      lookups = 0;
+      hits = 0;
+    } else {
+      state = DISABLED;
+      map.clear();
+    }
+  }
+
+}
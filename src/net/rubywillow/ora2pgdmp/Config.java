@@ -5,6 +5,7 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
+import java.io.File;
 import java.io.FileReader;
 
 public class Config {
@@ -23,6 +24,29 @@ public class Config {
   private static final String WORK = "work";
   private static final String QUERY = "query";
   private static final String TARGET = "target";
+  private static final String OUTDIRS = "outdirs";
+  private static final String OUTDIRPOLICY = "outdirpolicy";
+  private static final String WRITEBUFFER = "writebuffer";
+  private static final String FSYNC = "fsync";
+  private static final String ENCODERS = "encoders";
+  private static final String SINK = "sink";
+  private static final String COMPRESS = "compress";
+  private static final String VALUECACHE = "valuecache";
+  private static final String OFFHEAP = "offheap";
+  private static final String SYNTHETIC = "synthetic";
+  private static final String ROWS = "rows";
+  private static final String SEED = "seed";
+  private static final String COLUMNS = "columns";
+  private static final String NAME = "name";
+  private static final String TYPE = "type";
+  private static final String WIDTH = "width";
+  private static final String SCALE = "scale";
+  private static final String NULLRATIO = "nullratio";
+  private static final String SPECIALRATE = "specialrate";
+  private static final String DISTINCT = "distinct";
+
+  private static final String ROUNDROBIN = "roundrobin";
+  private static final String FREESPACE = "freespace";
 
   private String goutFile = "work";
   private String gpghost;
@@ -32,11 +56,23 @@ public class Config {
   private String gpgpassword;
 
   private int numSessions = 7;
+  private int numEncoders = Runtime.getRuntime().availableProcessors();
+  private int writeBuffer = 1048576;
+  private boolean offHeap = true;
+  private ChannelOutputStream.Fsync fsync = ChannelOutputStream.Fsync.NONE;
 
   public int getNumSessions() {
     return numSessions;
   }
 
+  public int getNumEncoders() {
+    return numEncoders;
+  }
+
+  public boolean isOffHeap() {
+    return offHeap;
+  }
+
   class Individual {
     private String outFile;
     private boolean truncate;
@@ -50,6 +86,12 @@ public class Config {
     private String pgpassword;
     private String query;
     private String target;
+    private int writeBuffer;
+    private ChannelOutputStream.Fsync fsync;
+    private SyntheticRowSource.Spec synthetic;
+    private Job.Sink sink;
+    private boolean compress;
+    private boolean valueCache;
 
     public String getOutFile() {
       return outFile;
@@ -99,30 +141,64 @@ public class Config {
       return target;
     }
 
+    public int getWriteBuffer() {
+      return writeBuffer;
+    }
+
+    public ChannelOutputStream.Fsync getFsync() {
+      return fsync;
+    }
+
+    public Job.Sink getSink() {
+      return sink;
+    }
+
+    public boolean isCompress() {
+      return compress;
+    }
+
+    public boolean isValueCache() {
+      return valueCache;
+    }
+
+    // where the COPY script goes (or comes from, for the shell script)
+    public String getOutPath() {
+      return outFile + ( compress ? ".sql.gz" : ".sql" );
+    }
+
+    // non-null when this work item generates its rows instead of querying Oracle
+    public SyntheticRowSource.Spec getSynthetic() {
+      return synthetic;
+    }
+
   }
 
   private Individual[] indcfgs;
+  private boolean usesStdout = false;
 
   public Individual[] getIndcfgs() {
     return indcfgs;
   }
 
+  // if any job writes to stdout, everything else has to go to stderr
+  public boolean usesStdout() {
+    return usesStdout;
+  }
+
   public Config( String configFile ) throws Exception {
     super();
 
     JsonObject j = (JsonObject) new JsonParser().parse( new FileReader( configFile ) );
 
     if ( !j.has( OUTFILE ) ||
-        !j.has( ORADB ) ||
-        !j.has( ORAUSERNAME ) ||
-        !j.has( ORAPASSWORD ) ||
         !j.has( WORK ) )
-      throw new Exception( "Must provide \"outfile\", \"oradb\", \"orausername\", \"orapassword\", and \"work\" parameters in your config file" );
+      throw new Exception( "Must provide \"outfile\" and \"work\" parameters in your config file" );
 
     this.goutFile = j.getAsJsonPrimitive( OUTFILE ).getAsString();
-    final String goradb = j.getAsJsonPrimitive( ORADB ).getAsString();
-    final String gorausername = j.getAsJsonPrimitive( ORAUSERNAME ).getAsString();
-    final String gorapassword = j.getAsJsonPrimitive( ORAPASSWORD ).getAsString();
+    // the Oracle parameters may be left out if every work item is synthetic
+    final String goradb = j.has( ORADB ) ? j.getAsJsonPrimitive( ORADB ).getAsString() : null;
+    final String gorausername = j.has( ORAUSERNAME ) ? j.getAsJsonPrimitive( ORAUSERNAME ).getAsString() : null;
+    final String gorapassword = j.has( ORAPASSWORD ) ? j.getAsJsonPrimitive( ORAPASSWORD ).getAsString() : null;
 
     boolean gtruncate = false;
     if ( j.has( TRUNCATE ) )
@@ -146,6 +222,54 @@ public class Config {
     if (j.has( SESSIONS ))
       this.numSessions = j.getAsJsonPrimitive( SESSIONS ).getAsInt();
 
+    if ( j.has( ENCODERS ) )
+      this.numEncoders = Math.max( 1, j.getAsJsonPrimitive( ENCODERS ).getAsInt() );
+
+    if ( j.has( WRITEBUFFER ) )
+      this.writeBuffer = j.getAsJsonPrimitive( WRITEBUFFER ).getAsInt();
+
+    if ( j.has( OFFHEAP ) )
+      this.offHeap = j.getAsJsonPrimitive( OFFHEAP ).getAsBoolean();
+
+    if ( j.has( FSYNC ) ) {
+      String f = j.getAsJsonPrimitive( FSYNC ).getAsString();
+      try {
+        this.fsync = ChannelOutputStream.Fsync.valueOf( f.toUpperCase() );
+      } catch ( IllegalArgumentException e ) {
+        throw new Exception( "\"fsync\" must be one of \"none\", \"close\", or \"always\"; got \"" + f + "\"" );
+      }
+    }
+
+    final Job.Sink gsink = j.has( SINK ) ? parseSink( j.getAsJsonPrimitive( SINK ).getAsString() ) : Job.Sink.FILE;
+
+    boolean gcompress = true;
+    if ( j.has( COMPRESS ) )
+      gcompress = j.getAsJsonPrimitive( COMPRESS ).getAsBoolean();
+
+    boolean gvalueCache = true;
+    if ( j.has( VALUECACHE ) )
+      gvalueCache = j.getAsJsonPrimitive( VALUECACHE ).getAsBoolean();
+
+    File[] outDirs = null;
+    if ( j.has( OUTDIRS ) ) {
+      JsonArray dirs = j.getAsJsonArray( OUTDIRS );
+      outDirs = new File[ dirs.size() ];
+      int dx = 0;
+      for ( final JsonElement dir : dirs ) {
+        outDirs[dx] = new File( dir.getAsString() );
+        if ( !outDirs[dx].isDirectory() && !outDirs[dx].mkdirs() )
+          throw new Exception( "Output directory \"" + dir.getAsString() + "\" does not exist and could not be created" );
+        dx++;
+      }
+    }
+
+    String policy = ROUNDROBIN;
+    if ( j.has( OUTDIRPOLICY ) ) {
+      policy = j.getAsJsonPrimitive( OUTDIRPOLICY ).getAsString();
+      if ( !policy.equals( ROUNDROBIN ) && !policy.equals( FREESPACE ) )
+        throw new Exception( "\"outdirpolicy\" must be \"roundrobin\" or \"freespace\"; got \"" + policy + "\"" );
+    }
+
     JsonArray works = j.getAsJsonArray( WORK );
     indcfgs = new Individual[ works.size() ];
     int ix = 0;
@@ -162,12 +286,98 @@ public class Config {
       ind.pgdb = work.has( PGDB ) ? work.getAsJsonPrimitive( PGDB ).getAsString() : this.gpgdb;
       ind.pgusername = work.has( PGUSERNAME ) ? work.getAsJsonPrimitive( PGUSERNAME ).getAsString() : this.gpgusername;
       ind.pgpassword = work.has( PGPASSWORD ) ? work.getAsJsonPrimitive( PGPASSWORD ).getAsString() : this.gpgpassword;
-      ind.query = work.getAsJsonPrimitive( QUERY ).getAsString();
+      ind.query = work.has( QUERY ) ? work.getAsJsonPrimitive( QUERY ).getAsString() : null;
+      if ( work.has( SYNTHETIC ) )
+        ind.synthetic = parseSynthetic( work.getAsJsonObject( SYNTHETIC ) );
+      else if ( ind.query == null || ind.oradb == null || ind.orausername == null || ind.orapassword == null )
+        throw new Exception( "Must provide \"oradb\", \"orausername\", \"orapassword\", and \"query\" parameters for each work item" );
       ind.target = work.getAsJsonPrimitive( TARGET ).getAsString();
       ind.outFile = work.getAsJsonPrimitive( OUTFILE ).getAsString();
+      ind.writeBuffer = this.writeBuffer;
+      ind.fsync = this.fsync;
+      ind.sink = work.has( SINK ) ? parseSink( work.getAsJsonPrimitive( SINK ).getAsString() ) : gsink;
+      ind.compress = work.has( COMPRESS ) ? work.getAsJsonPrimitive( COMPRESS ).getAsBoolean() : gcompress;
+      ind.valueCache = work.has( VALUECACHE ) ? work.getAsJsonPrimitive( VALUECACHE ).getAsBoolean() : gvalueCache;
+      if ( ind.sink == Job.Sink.STDOUT )
+        usesStdout = true;
       indcfgs[ix++] = ind;
     }
 
+    if ( outDirs != null && outDirs.length > 0 )
+      assignOutDirs( outDirs, FREESPACE.equals( policy ) );
+
+  }
+
+  private static Job.Sink parseSink( final String s ) throws Exception {
+    try {
+      return Job.Sink.valueOf( s.toUpperCase() );
+    } catch ( IllegalArgumentException e ) {
+      throw new Exception( "\"sink\" must be one of \"file\", \"stdout\", or \"pipe\"; got \"" + s + "\"" );
+    }
+  }
+
+  private static SyntheticRowSource.Spec parseSynthetic( final JsonObject syn ) throws Exception {
+    if ( !syn.has( ROWS ) || !syn.has( COLUMNS ) )
+      throw new Exception( "Must provide \"rows\" and \"columns\" parameters for a synthetic work item" );
+
+    JsonArray cols = syn.getAsJsonArray( COLUMNS );
+    SyntheticRowSource.Column[] columns = new SyntheticRowSource.Column[ cols.size() ];
+    int cx = 0;
+
+    for ( final JsonElement col1 : cols ) {
+      JsonObject col = col1.getAsJsonObject();
+      String t = col.has( TYPE ) ? col.getAsJsonPrimitive( TYPE ).getAsString() : "varchar";
+      SyntheticRowSource.Type type;
+      try {
+        type = SyntheticRowSource.Type.valueOf( t.toUpperCase() );
+      } catch ( IllegalArgumentException e ) {
+        throw new Exception( "Synthetic column \"type\" must be one of \"varchar\", \"number\", \"date\", \"clob\", or \"blob\"; got \"" + t + "\"" );
+      }
+
+      int defWidth = type == SyntheticRowSource.Type.CLOB || type == SyntheticRowSource.Type.BLOB ? 4096 : type == SyntheticRowSource.Type.NUMBER ? 10 : 20;
+      columns[cx] = new SyntheticRowSource.Column(
+          col.has( NAME ) ? col.getAsJsonPrimitive( NAME ).getAsString() : "c" + ( cx + 1 ),
+          type,
+          col.has( WIDTH ) ? col.getAsJsonPrimitive( WIDTH ).getAsInt() : defWidth,
+          col.has( SCALE ) ? col.getAsJsonPrimitive( SCALE ).getAsInt() : 0,
+          col.has( NULLRATIO ) ? col.getAsJsonPrimitive( NULLRATIO ).getAsDouble() : 0.0,
+          col.has( SPECIALRATE ) ? col.getAsJsonPrimitive( SPECIALRATE ).getAsDouble() : 0.0,
+          col.has( DISTINCT ) ? col.getAsJsonPrimitive( DISTINCT ).getAsInt() : 4096 );
+      cx++;
+    }
+
+    return new SyntheticRowSource.Spec(
+        syn.getAsJsonPrimitive( ROWS ).getAsLong(),
+        syn.has( SEED ) ? syn.getAsJsonPrimitive( SEED ).getAsLong() : 0L,
+        columns );
+  }
+
+  // Spread the work items over the output directories so that concurrent
+  // jobs write to different volumes. Round-robin simply deals them out in
+  // order; free-space gives each item to the directory with the most usable
+  // space per item already assigned to it.
+  private void assignOutDirs( final File[] outDirs, final boolean byFreeSpace ) throws Exception {
+    for ( Individual ind : indcfgs ) {
+      if ( new File( ind.outFile ).isAbsolute() )
+        throw new Exception( "Work item outfile \"" + ind.outFile + "\" is an absolute path; use a relative path when \"outdirs\" is set" );
+    }
+
+    int[] assigned = new int[ outDirs.length ];
+    long[] usable = new long[ outDirs.length ];
+    for ( int d = 0; d < outDirs.length; d++ )
+      usable[d] = outDirs[d].getUsableSpace();
+
+    for ( int i = 0; i < indcfgs.length; i++ ) {
+      int pick = i % outDirs.length;
+      if ( byFreeSpace ) {
+        for ( int d = 0; d < outDirs.length; d++ ) {
+          if ( usable[d] / ( assigned[d] + 1 ) > usable[pick] / ( assigned[pick] + 1 ) )
+            pick = d;
+        }
+      }
+      assigned[pick]++;
+      indcfgs[i].outFile = new File( outDirs[pick], indcfgs[i].outFile ).getPath();
+    }
   }
 
   public String getOutFile() {
@@ -0,0 +1,258 @@
+package net.rubywillow.ora2pgdmp;
+
+import oracle.jdbc.OracleConnection;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+public class ConnectionPool {
+
+  /*
+      Oracle sessions shared by all jobs. There is one pool for each distinct
+      database/username/password found in the configuration, holding at most
+      "sessions" connections (fewer if fewer work items use it). The NLS session
+      setup is done once per physical connection rather than once per job.
+
+      No more than "sessions" queries run at once in total, so that's how many
+      sessions are opened, in parallel, when the program starts: one for each
+      database as far as they go, and the rest where the work items are. A pool
+      that needs more than it was given opens them in acquire() as it goes.
+
+      acquire() blocks until a session is free, so the pool is also what limits
+      the number of queries running against each database at the same time.
+
+      If none of a database's sessions can be opened at startup, only the work
+      items for that database fail; everything else carries on.
+  */
+
+  private static final String SESSION_SETUP = "begin\n" +
+      "  execute immediate q'[alter session set nls_date_format='YYYY-MM-DD HH24:MI:SS']';\n" +
+      "  execute immediate q'[alter session set nls_timestamp_format='YYYY-MM-DD HH24:MI:SS.FF6']';\n" +
+      "  execute immediate q'[alter session set nls_timestamp_tz_format='YYYY-MM-DD HH24:MI:SS.FF6TZH:TZM']';\n" +
+      "end;";
+
+  private static class Pool {
+    private final String oradb;
+    private final String orausername;
+    private final String orapassword;
+    private final Semaphore permits;
+    private final ConcurrentLinkedQueue<OracleConnection> idle = new ConcurrentLinkedQueue<OracleConnection>();
+    private int size = 1;
+    // work items using this pool, and how many sessions it gets at startup
+    private int items = 1;
+    private int warm = 0;
+    // set when no session at all could be opened at startup
+    private Exception failure;
+
+    Pool( final Config.Individual icfg ) {
+      oradb = icfg.getOradb();
+      orausername = icfg.getOrausername();
+      orapassword = icfg.getOrapassword();
+      permits = new Semaphore( 0, true );
+    }
+  }
+
+  // in configuration order, so the first databases are the ones that get a session if there are too few
+  private final Map<String, Pool> pools = new LinkedHashMap<String, Pool>();
+
+  public ConnectionPool( final Config cfg ) throws Exception {
+    super();
+
+    // work out how many sessions each database needs
+    for ( Config.Individual icfg : cfg.getIndcfgs() ) {
+      if ( icfg.getSynthetic() != null )
+        continue;
+      String key = key( icfg );
+      Pool pool = pools.get( key );
+      if ( pool == null ) {
+        pools.put( key, new Pool( icfg ) );
+        continue;
+      }
+      pool.items++;
+      if ( pool.size < cfg.getNumSessions() )
+        pool.size++;
+    }
+
+    // share out the sessions to open now
+    int total = 0;
+    for ( Pool pool : pools.values() ) {
+      if ( total < cfg.getNumSessions() ) {
+        pool.warm = 1;
+        total++;
+      }
+    }
+    while ( total < cfg.getNumSessions() ) {
+      // the pool with the most work items per session so far
+      Pool best = null;
+      for ( Pool pool : pools.values() ) {
+        if ( pool.warm < pool.size && ( best == null || pool.items * best.warm > best.items * pool.warm ) )
+          best = pool;
+      }
+      if ( best == null )
+        break;
+      best.warm++;
+      total++;
+    }
+
+    if ( total == 0 )
+      return;
+
+    // log in to everything at once instead of one job at a time
+    final ExecutorService loginThreads = Executors.newFixedThreadPool( total );
+    try {
+      List<Future<OracleConnection>> logins = new ArrayList<Future<OracleConnection>>( total );
+      List<Pool> owners = new ArrayList<Pool>( total );
+      for ( final Pool pool : pools.values() ) {
+        for ( int i = 0; i < pool.warm; i++ ) {
+          owners.add( pool );
+          logins.add( loginThreads.submit( new Callable<OracleConnection>() {
+            @Override
+            public OracleConnection call() throws Exception {
+              return open( pool );
+            }
+          } ) );
+        }
+      }
+
+      // a database we can't log in to only fails its own work items
+      int opened = 0;
+      for ( int i = 0; i < logins.size(); i++ ) {
+        Pool pool = owners.get( i );
+        try {
+          pool.idle.add( logins.get( i ).get() );
+          opened++;
+        } catch ( ExecutionException e ) {
+          if ( pool.failure == null )
+            pool.failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+      }
+      total = opened;
+    } finally {
+      loginThreads.shutdown();
+    }
+
+    for ( Pool pool : pools.values() ) {
+      if ( pool.failure != null ) {
+        if ( pool.idle.isEmpty() ) {
+          Main.log.println( "Unable to log in to " + pool.orausername + "@" + pool.oradb + ": " + pool.failure.getMessage() );
+          continue;
+        }
+        // some sessions opened; the missing ones are retried by acquire()
+        pool.failure = null;
+      }
+      pool.permits.release( pool.size );
+    }
+
+    Main.log.println( "Opened " + total + " Oracle session(s)" );
+  }
+
+  // Wait for a free session on the database used by this work item.
+  public OracleConnection acquire( final Config.Individual icfg ) throws Exception {
+    Pool pool = pools.get( key( icfg ) );
+    if ( pool.failure != null )
+      throw new Exception( "Unable to log in to " + pool.orausername + "@" + pool.oradb, pool.failure );
+    pool.permits.acquire();
+
+    OracleConnection conn = pool.idle.poll();
+
+    // a session that sat idle for a long time may have been dropped by a firewall
+    // or an idle timeout; check it and log in again if it's gone
+    if ( conn != null && !isAlive( conn ) ) {
+      try {
+        conn.close();
+      } catch ( SQLException ignored ) {
+      }
+      conn = null;
+    }
+
+    if ( conn == null ) {
+      // a previous session was discarded, or this one wasn't opened at startup
+      try {
+        conn = open( pool );
+      } catch ( Exception e ) {
+        pool.permits.release();
+        throw e;
+      }
+    }
+    return conn;
+  }
+
+  // Hand a session back. Sessions that are no longer usable are closed
+  // and will be re-opened by the next acquire().
+  public void release( final Config.Individual icfg, final OracleConnection conn ) {
+    Pool pool = pools.get( key( icfg ) );
+    try {
+      conn.rollback();
+      pool.idle.add( conn );
+    } catch ( SQLException e ) {
+      try {
+        conn.close();
+      } catch ( SQLException ignored ) {
+      }
+    } finally {
+      pool.permits.release();
+    }
+  }
+
+  public void close() {
+    for ( Pool pool : pools.values() ) {
+      OracleConnection conn;
+      while ( ( conn = pool.idle.poll() ) != null ) {
+        try {
+          conn.close();
+        } catch ( SQLException e ) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  private static boolean isAlive( final OracleConnection conn ) {
+    try {
+      return conn.isValid( 5 );
+    } catch ( SQLException e ) {
+      return false;
+    }
+  }
+
+  private static OracleConnection open( final Pool pool ) throws SQLException {
+    Properties props = new Properties();
+    props.setProperty( "user", pool.orausername );
+    props.setProperty( "password", pool.orapassword );
+
+    OracleConnection conn = (OracleConnection) DriverManager.getConnection( "jdbc:oracle:thin:@" + pool.oradb, props );
+    try {
+      conn.setAutoCommit( false );
+
+      // set output string formats for dates and timestamps
+      Statement stmt = conn.createStatement();
+      try {
+        stmt.execute( SESSION_SETUP );
+      } finally {
+        stmt.close();
+      }
+    } catch ( SQLException e ) {
+      conn.close();
+      throw e;
+    }
+    return conn;
+  }
+
+  private static String key( final Config.Individual icfg ) {
+    return icfg.getOradb() + '\0' + icfg.getOrausername() + '\0' + icfg.getOrapassword();
+  }
+
+}
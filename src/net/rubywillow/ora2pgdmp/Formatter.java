@@ -1,24 +1,30 @@
 package net.rubywillow.ora2pgdmp;
 
 import oracle.sql.ANYDATA;
-import oracle.sql.BLOB;
 
 import java.io.*;
 import java.math.BigDecimal;
+import java.sql.Blob;
+import java.sql.Clob;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ForkJoinPool;
 
 /*
-    This class is instantiated once per record. Once it acquires the file lock,
-    it must keep the lock until the record is finished processing. For short-ish records,
-    the lock will only be acquired at the time the record is flushed, then immediately
-    released. For longer records, we may acquire the lock before we're done with the record.
-    In this case it could block other formatter threads trying to write records,
-    but there's nothing to be done about that.
+    This class is instantiated once per batch of records. It never touches the output itself:
+    as its buffer fills up it hands the buffer to its job's writer thread through a small queue,
+    and carries on with a fresh one. The writer takes the formatters of a job one at a time, in
+    the order the batches were read, so nothing has to be locked and the output keeps the query order.
+    If the writer falls behind the queue fills up and the formatter waits; the wait is done
+    through ForkJoinPool.managedBlock so the pool can keep the other jobs' batches moving meanwhile.
+
+    The record buffer and the chunks used to move data around come from the BufferArena
+    and go back to it when the batch is done, as does the batch itself, so formatting a record
+    doesn't leave garbage behind.
 */
 public class Formatter implements Callable<Integer> {
 
@@ -27,102 +33,153 @@ public class Formatter implements Callable<Integer> {
     private static final char carriagereturn = 13;
     private static final char backslash = 92;
 
-    // if a date comes back as a java.sql.Timestamp, use this date formatter
-    private SimpleDateFormat sdf;
+    // if a date comes back as a java.sql.Timestamp, use this date formatter (one per thread; they aren't thread safe)
+    private static final ThreadLocal<SimpleDateFormat> sdf = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        }
+    };
 
-    // The file we write to. Writes must be synchronized using lock
-    private Writer out;
-    private ReentrantLock lock;
+    // marks the last buffer of a batch
+    public static final StringBuilder END = new StringBuilder(0);
 
-    // our main buffer
-    private StringBuilder buf = new StringBuilder(1024);
+    // finished buffers on their way to the writer; only a few, so a batch can't run far ahead of it
+    private final BlockingQueue<StringBuilder> out = new ArrayBlockingQueue<StringBuilder>(4);
 
-    // the columns we are formatting
-    private Object[] cols;
+    // where our buffers come from
+    private BufferArena arena;
 
-    private final static int TWOMEG = 2097152;
-    private final static int ONEMEG = 1048576;
+    // our main buffer, and where the record being formatted starts in it
+    private StringBuilder buf;
+    private int recordStart;
+
+    // the records we are formatting; rows * colCount values, one record after another
+    private Object[] batch;
+    private int rows;
+    private int colCount;
 
-    public Formatter(Writer out_, Object[] cols_, ReentrantLock lock_) {
-        out = out_;
-        cols = cols_;
-        lock = lock_;
+    // per-column encoded value caches, shared by all records of a job; null if not used
+    private ColumnCache[] caches;
+    private ColumnCache.Key probe;
+
+    // a record (usually a LOB) this big is handed over before it is finished
+    private final static int ONEMEG = 1048576;
+    // once this much is buffered, hand it over at the end of the record
+    private final static int RECORDFLUSH = 65536;
+
+    public Formatter(Object[] batch_, int rows_, int colCount_, ColumnCache[] caches_, BufferArena arena_) {
+        batch = batch_;
+        rows = rows_;
+        colCount = colCount_;
+        caches = caches_;
+        arena = arena_;
+        if (caches != null)
+            probe = new ColumnCache.Key();
     }
 
     @Override
     public Integer call() throws Exception {
 
-        if (cols == null)
-            // this is our indication that we aren't processing any more
-            return 1;
-
+        buf = arena.acquireBuilder();
         try {
-            String tab = null;
-            // iterate through the columns, putting a tab
-            // character between them. (no tab at beginning or end)
-            for (Object obj : cols) {
-
-                if (tab != null)
-                    buf.append(tab);
-                else
-                    tab = "\t";
+            for (int r = 0, base = 0; r < rows; r++, base += colCount) {
+                recordStart = buf.length();
+                try {
+                    processRecord(base);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    // drop whatever part of the bad record hasn't been handed over yet
+                    buf.setLength(recordStart);
+                }
 
-                processObject(obj);
+                // hand over between records once there's a good amount
+                if (buf.length() >= RECORDFLUSH)
+                    handOff();
             }
-            // new-line indicates end of record
-            buf.append("\n");
-            // push to file
-            flushBuffer(true);
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
-            lock.unlock();
+            // the batch is formatted, so it can go back now; once the writer has the end
+            // marker the job can finish and the program can end, so nothing may be left after it
+            arena.releaseRows(batch);
+            batch = null;
+            Main.recCount.addAndGet(rows);
+
+            // the rest, then the end marker; the writer is waiting for it no matter what happened
+            try {
+                if (buf.length() > 0)
+                    send(buf);
+                else
+                    arena.releaseBuilder(buf);
+                buf = null;
+                send(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
-        Main.recCount.incrementAndGet();
         return 0;
     }
 
-    private void doFlush() throws Exception {
-        out.write(buf.toString());
-        buf.setLength(0);
+    public int getRows() {
+        return rows;
     }
 
-    private void flushBuffer(boolean force) throws Exception {
+    // The next buffer for the writer, in order; END after the last one.
+    public StringBuilder take() throws InterruptedException {
+        return out.take();
+    }
 
-        // We *must* write now. Wait indefinitely for a lock.
-        if (force) {
-            if (!lock.isHeldByCurrentThread()) {
-                lock.lock();
-            }
-            doFlush();
-            return;
-        }
+    private void processRecord(int base) throws Exception {
+        // iterate through the columns, putting a tab
+        // character between them. (no tab at beginning or end)
+        for (int i = 0; i < colCount; i++) {
 
-        // If we aren't forcing, we'll attempt to get a lock but not try too hard.
-        // 1: if we already have the lock OR
-        // 2: get a lock if nothing else is holding the lock OR
-        // 3: try to get the lock but only for 1 second if something else is holding.
-        if (lock.isHeldByCurrentThread() || lock.tryLock() || lock.tryLock(1, TimeUnit.SECONDS)) {
-            doFlush();
-        }
+            if (i > 0)
+                buf.append(tabchar);
 
+            if (caches != null)
+                processCached(batch[base + i], caches[i]);
+            else
+                processObject(batch[base + i]);
+        }
+        // new-line indicates end of record
+        buf.append(linefeed);
     }
 
-    private void checkFlush() throws Exception {
-
-        int len = buf.length();
+    private void handOff() throws InterruptedException {
+        send(buf);
+        buf = arena.acquireBuilder();
+        recordStart = 0;
+    }
 
-        if (len < ONEMEG) // don't need to flush yet
+    // normally there's room straight away; otherwise tell the pool we're about to block
+    private void send(final StringBuilder sb) throws InterruptedException {
+        if (out.offer(sb))
             return;
+        ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+            private boolean sent = false;
+
+            @Override
+            public boolean block() throws InterruptedException {
+                if (!sent) {
+                    out.put(sb);
+                    sent = true;
+                }
+                return true;
+            }
 
-        if (len < TWOMEG) {
-            // try to flush, but it's not critical yet
-            flushBuffer(false);
-            return;
-        }
+            @Override
+            public boolean isReleasable() {
+                return sent || (sent = out.offer(sb));
+            }
+        });
+    }
 
-        // must flush; buffer getting too big now
-        flushBuffer(true);
+    private void checkFlush() throws Exception {
+        // a very large record is handed over in pieces; the writer keeps them together
+        if (buf.length() >= ONEMEG)
+            handOff();
     }
 
     private void doWrite(final String str) throws Exception {
@@ -130,9 +187,41 @@ public class Formatter implements Callable<Integer> {
         checkFlush();
     }
 
-    private void doWrite(final char[] charArray) throws Exception {
-        buf.append(charArray);
-        checkFlush();
+    // low-cardinality columns are looked up in the column's cache, and
+    // anything the cache doesn't handle goes through processObject
+    private void processCached(Object obj, ColumnCache cache) throws Exception {
+
+        if (obj != null && cache.isActive()) {
+            Object key = ColumnCache.keyOf(obj, probe);
+            if (key != null) {
+                String encoded = cache.get(key);
+                if (encoded == null) {
+                    encoded = encode(obj);
+                    cache.put(key, encoded);
+                }
+                doWrite(encoded);
+                return;
+            }
+        }
+        processObject(obj);
+    }
+
+    // the COPY text for the types ColumnCache.keyOf accepts
+    private static String encode(Object obj) {
+
+        if (obj instanceof java.lang.String) {
+            return escaped((String) obj);
+        } else if (obj instanceof oracle.sql.CHAR) {
+            return escaped(((oracle.sql.CHAR) obj).stringValue());
+        } else if (obj instanceof oracle.sql.NUMBER) {
+            return ((oracle.sql.NUMBER) obj).stringValue();
+        } else if (obj instanceof oracle.sql.DATE) {
+            return ((oracle.sql.DATE) obj).stringValue();
+        } else if (obj instanceof java.sql.Timestamp) {
+            return sdf.get().format((Timestamp) obj);
+        } else {
+            return ((BigDecimal) obj).toPlainString();
+        }
     }
 
     // this goes through all of the data types that we'll support. There
@@ -153,9 +242,7 @@ public class Formatter implements Callable<Integer> {
         } else if (obj instanceof oracle.sql.DATE) {
             doWrite(((oracle.sql.DATE) obj).stringValue());
         } else if (obj instanceof java.sql.Timestamp) {
-            if (sdf == null)
-                sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-            doWrite(sdf.format((Timestamp) obj));
+            doWrite(sdf.get().format((Timestamp) obj));
         } else if (obj instanceof oracle.sql.TIMESTAMP) {
             doWrite(((oracle.sql.TIMESTAMP) obj).stringValue());
         } else if (obj instanceof oracle.sql.TIMESTAMPTZ) {
@@ -180,89 +267,120 @@ public class Formatter implements Callable<Integer> {
             doWrite(((oracle.sql.BINARY_FLOAT) obj).bigDecimalValue().toPlainString());
         } else if (obj instanceof oracle.sql.ANYDATA) {
             processObject(((ANYDATA) obj).accessDatum());
-        } else if (obj instanceof oracle.sql.CLOB) {
-            final Reader r = ((oracle.sql.CLOB) obj).getCharacterStream();
+        } else if (obj instanceof java.sql.Clob) {
+            // oracle.sql.CLOB, or a SerialClob from the synthetic source
+            final Reader r = ((Clob) obj).getCharacterStream();
 
-            char[] buf = new char[16384];
-            int readAmount = r.read(buf);
+            char[] chunk = arena.acquireChars();
+            try {
+                int readAmount = r.read(chunk);
 
-            while (readAmount > 0) {
-                escape(new String(buf, 0, readAmount));
-                readAmount = r.read(buf);
+                while (readAmount > 0) {
+                    escape(chunk, 0, readAmount);
+                    readAmount = r.read(chunk);
+                }
+            } finally {
+                arena.releaseChars(chunk);
             }
-        } else if (obj instanceof oracle.sql.BLOB) {
-            final InputStream r = ((BLOB) obj).getBinaryStream();
-
-            byte[] buf = new byte[16384];
-            int readAmount = r.read(buf);
-
-            boolean head = true;
-            while (readAmount > 0) {
-                bytesToHex(buf, 0, readAmount, head);
-                if (head)
-                    head = false;
-                readAmount = r.read(buf);
+        } else if (obj instanceof java.sql.Blob) {
+            // oracle.sql.BLOB, or a SerialBlob from the synthetic source
+            final InputStream r = ((Blob) obj).getBinaryStream();
+
+            byte[] chunk = arena.acquireBytes();
+            try {
+                int readAmount = r.read(chunk);
+
+                boolean head = true;
+                while (readAmount > 0) {
+                    bytesToHex(chunk, 0, readAmount, head);
+                    if (head)
+                        head = false;
+                    readAmount = r.read(chunk);
+                }
+            } finally {
+                arena.releaseBytes(chunk);
             }
         } else {
             throw new SQLException("An unsupported datatype was encountered: " + obj.getClass().getCanonicalName());
         }
     }
 
-    private void escape(final String str) throws Exception {
+    // PostgreSQL COPY data cannot have carriage returns, line-feeds, tab characters,
+    // or single backslashes. These are all control characters.
+    // replace these with "\r", "\n", "\t", "\\" in the final output
 
-        if (str.isEmpty())
-            return;
+    private void escape(final String str) throws Exception {
+        appendEscaped(buf, str);
+        checkFlush();
+    }
 
-        // PostgreSQL COPY data cannot have carriage returns, line-feeds, tab characters,
-        // or single backslashes. These are all control characters.
-        // replace these with "\r", "\n", "\t", "\\" in the final output
+    private void escape(final char[] chars, final int offset, final int length) throws Exception {
+        int start = offset;
+        int end = offset + length;
+        for (int z = offset; z < end; z++) {
+            char chr = chars[z];
+            if (isSpecial(chr)) {
+                buf.append(chars, start, z - start);
+                appendEscape(buf, chr);
+                start = z + 1;
+            }
+        }
+        buf.append(chars, start, end - start);
+        checkFlush();
+    }
 
+    // for the column caches; only makes a new string if something needed escaping
+    private static String escaped(final String str) {
         int strLen = str.length();
-        int dstLen = 0;
-        char chr;
-
-        // Test string for the special characters.
-        // When one is found, add another character to dstLen 
         for (int z = 0; z < strLen; z++) {
-            chr = str.charAt(z);
-            dstLen++;
-            if (chr == tabchar || chr == linefeed || chr == carriagereturn || chr == backslash) {
-                dstLen++;
+            if (isSpecial(str.charAt(z))) {
+                StringBuilder sb = new StringBuilder(strLen + 16);
+                appendEscaped(sb, str);
+                return sb.toString();
             }
         }
+        return str;
+    }
 
-        // if no special chars were found, dstLen should == strLen
-        if (dstLen > strLen) {
-            // dstLen indicates how many characters are needed for our new string
-            char[] chars = new char[dstLen];
-            int y = 0;
-            for (int z = 0; z < strLen; z++) {
-                chr = str.charAt(z);
-                if (chr == tabchar || chr == linefeed || chr == carriagereturn || chr == backslash) {
-                    chars[y++] = '\\';
-                    switch (chr) {
-                        case tabchar:
-                            chars[y++] = 't';
-                            break;
-                        case linefeed:
-                            chars[y++] = 'n';
-                            break;
-                        case carriagereturn:
-                            chars[y++] = 'r';
-                            break;
-                        case backslash:
-                            chars[y++] = '\\';
-                            break;
-                        default:
-                            break;
-                    }
-                } else {
-                    chars[y++] = chr;
-                }
+    // copy runs of ordinary characters straight across, escaping as we go
+    private static void appendEscaped(final StringBuilder sb, final String str) {
+        int strLen = str.length();
+        int start = 0;
+        for (int z = 0; z < strLen; z++) {
+            char chr = str.charAt(z);
+            if (isSpecial(chr)) {
+                sb.append(str, start, z);
+                appendEscape(sb, chr);
+                start = z + 1;
             }
-            doWrite(chars);
-        } else {
-            doWrite(str);
+        }
+        if (start == 0)
+            sb.append(str);
+        else
+            sb.append(str, start, strLen);
+    }
+
+    private static boolean isSpecial(final char chr) {
+        return chr == tabchar || chr == linefeed || chr == carriagereturn || chr == backslash;
+    }
+
+    private static void appendEscape(final StringBuilder sb, final char chr) {
+        sb.append('\\');
+        switch (chr) {
+            case tabchar:
+                sb.append('t');
+                break;
+            case linefeed:
+                sb.append('n');
+                break;
+            case carriagereturn:
+                sb.append('r');
+                break;
+            case backslash:
+                sb.append('\\');
+                break;
+            default:
+                break;
         }
     }
 
@@ -271,20 +389,19 @@ public class Formatter implements Callable<Integer> {
     private void bytesToHex(final byte[] bytes, final int offset, final int length, final boolean header) throws Exception {
         int offs = offset;
         int i = 0;
-        int j = 0;
         int v;
 
-        char[] hexChars = new char[length * 2];
+        if (header)
+            buf.append("\\x");
+
+        buf.ensureCapacity(buf.length() + length * 2);
         while (i++ < length) {
             v = bytes[offs++] & 0xFF;
-            hexChars[j++] = hexArray[v >>> 4];
-            hexChars[j++] = hexArray[v & 0x0F];
+            buf.append(hexArray[v >>> 4]);
+            buf.append(hexArray[v & 0x0F]);
         }
 
-        if (header)
-            doWrite("\\x");
-
-        doWrite(hexChars);
+        checkFlush();
     }
 
     private void bytesToHex(final byte[] bytes, final boolean header) throws Exception {
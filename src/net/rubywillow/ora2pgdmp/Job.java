@@ -2,110 +2,187 @@ package net.rubywillow.ora2pgdmp;
 
 
 import oracle.jdbc.OracleConnection;
-import oracle.jdbc.OracleStatement;
 import org.joda.time.DateTime;
 import org.joda.time.Duration;
 import org.joda.time.Period;
 
 import java.io.*;
-import java.sql.*;
-import java.util.Properties;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.*;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPOutputStream;
 
 public class Job implements Runnable {
 
   /*
       this class is instantiated for each table export. It is essentially
-      a stand-alone program that connects to the database, runs the query,
+      a stand-alone program that borrows a database session, runs the query,
       formats the output as a PostgreSQL script, and writes the output
-      to a compressed (gzip) file.
+      to a compressed (gzip) file, stdout, or a named pipe.
   */
 
+  // where the COPY script is written
+  public enum Sink {
+    // a file, written as ".work" and renamed when complete
+    FILE,
+    // standard output, one job at a time
+    STDOUT,
+    // a named pipe per work item, created if necessary
+    PIPE
+  }
+
   private final static String fmt = "%02d %02d:%02d:%02d.%03d";
+  // at most this many records are handed to a formatter at a time,
+  // and fewer when they're wide; a batch is about BATCH_CHARS of output
+  private final static int BATCH = 64;
+  private final static int BATCH_CHARS = 65536;
+  // jobs currently formatting records; the encoders are split evenly between them
+  private final static AtomicInteger activeJobs = new AtomicInteger();
+  // tells the writer there are no more batches
+  private final static Formatter DONE = new Formatter( null, 0, 0, null, null );
   private OracleConnection conn;
   DateTime startTime;
   DateTime endTime;
   private int rowCount = 0;
-  private BlockingQueue<Future<Integer>> results;
-  final private ExecutorService fmtThreadPool = Executors.newFixedThreadPool( 8 );
+  private BlockingQueue<Formatter> results;
+  final private ForkJoinPool fmtThreadPool;
   private Config.Individual cfg;
+  private ConnectionPool pool;
+  private BufferArena arena;
+  private OutputStream os;
+  private File workFile;
   private Writer writer;
-  private ReentrantLock lock = new ReentrantLock();
-  private boolean stopFlag = false;
-
-  public Job( final Config.Individual jobConfig ) {
+  // batches submitted but not yet written
+  private int inFlight = 0;
+  private volatile IOException writeFailure;
+  // what the writer has seen so far, to size the batches by
+  private volatile long charsWritten = 0;
+  private volatile long recordsWritten = 0;
+
+  public Job( final Config.Individual jobConfig, final ConnectionPool connectionPool, final ForkJoinPool formatters,
+              final BufferArena bufferArena ) {
     // individual configuration for this job
     cfg = jobConfig;
+    pool = connectionPool;
+    // shared with all other jobs; don't shut it down here
+    fmtThreadPool = formatters;
+    // also shared with all other jobs
+    arena = bufferArena;
   }
 
   @Override
   public void run() {
+    // stdout jobs are run one at a time by Main, on a thread of their own
     try {
-      final StringBuilder sb = new StringBuilder();
-      Properties props = new Properties();
-      props.setProperty( "user", cfg.getOrausername() );
-      props.setProperty( "password", cfg.getOrapassword() );
-      
-      conn = (OracleConnection) DriverManager.getConnection( "jdbc:oracle:thin:@" + cfg.getOradb(), props );
+      step1();
+    } catch ( Exception e ) {
+      e.printStackTrace();
+    }
+  }
+
+  private void step1() throws Exception {
+    final StringBuilder sb = new StringBuilder();
+
+    // a named pipe blocks until something starts reading it, so it is opened before
+    // taking a session rather than hold one idle meanwhile
+    if ( cfg.getSink() == Sink.PIPE )
+      openOutput();
+
+    // wait for a free session; this is what limits how many queries run at once.
+    // synthetic work items don't need one.
+    if ( cfg.getSynthetic() == null ) {
       try {
-        conn.setAutoCommit( false );
-
-        // set output string formats for dates and timestamps
-        conn.createStatement().execute( "begin\n" +
-            "  execute immediate q'[alter session set nls_date_format='YYYY-MM-DD HH24:MI:SS']';\n" +
-            "  execute immediate q'[alter session set nls_timestamp_format='YYYY-MM-DD HH24:MI:SS.FF6']';\n" +
-            "  execute immediate q'[alter session set nls_timestamp_tz_format='YYYY-MM-DD HH24:MI:SS.FF6TZH:TZM']';\n" +
-            "end;" );
-        System.out.println();
-        System.out.println( "Starting job for: " + cfg.getTarget() );
-
-        // the bulk of the work is here
-        step2();
-
-        // let user know we finished this job
-        sb.setLength( 0 );
-        sb.append( "Finished job for: " );
-        sb.append( cfg.getTarget() );
-        sb.append( "  :: " );
-        sb.append( rowCount );
-        sb.append( " records in " );
-        Duration d = new Duration(startTime, endTime);
-        Period p = d.toPeriod();
-        sb.append( String.format( fmt, p.getDays(), p.getHours(), p.getMinutes(), p.getSeconds(), p.getMillis() ) );
-
-        long ms = d.getMillis();
-        if ( ms == 0 )
-          ms = 1;
-        sb.append( "  :: " );
-        sb.append( ( (long) rowCount * 1000L ) / ms );
-        sb.append( " records per second" );
-
-        System.out.println();
-        System.out.println( sb.toString() );
-      } finally {
-        conn.close();
-        fmtThreadPool.shutdown();
-        fmtThreadPool.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS );
+        conn = pool.acquire( cfg );
+      } catch ( Exception e ) {
+        if ( os != null )
+          os.close();
+        throw e;
       }
-
+    }
+    try {
+      // everything else is only opened once there's a session, so a failed login leaves no work file behind
+      if ( os == null )
+        openOutput();
+
+      Main.log.println();
+      Main.log.println( "Starting job for: " + cfg.getTarget() );
+
+      // the bulk of the work is here
+      step2();
+
+      // let user know we finished this job
+      sb.setLength( 0 );
+      sb.append( "Finished job for: " );
+      sb.append( cfg.getTarget() );
+      sb.append( "  :: " );
+      sb.append( rowCount );
+      sb.append( " records in " );
+      Duration d = new Duration(startTime, endTime);
+      Period p = d.toPeriod();
+      sb.append( String.format( fmt, p.getDays(), p.getHours(), p.getMinutes(), p.getSeconds(), p.getMillis() ) );
+
+      long ms = d.getMillis();
+      if ( ms == 0 )
+        ms = 1;
+      sb.append( "  :: " );
+      sb.append( ( (long) rowCount * 1000L ) / ms );
+      sb.append( " records per second" );
+
+      Main.log.println();
+      Main.log.println( sb.toString() );
     } catch ( Exception e ) {
-      e.printStackTrace();
+      abandonOutput();
+      throw e;
+    } finally {
+      if ( conn != null )
+        pool.release( cfg, conn );
     }
   }
 
-  private void step2() throws Exception {
+  // a job that failed part way through; don't leave its output open
+  private void abandonOutput() {
+    // the work file is left as ".work"; a pipe's reader sees the output end early
+    if ( os == null )
+      return;
+    try {
+      os.close();
+    } catch ( IOException ignored ) {
+    }
+
+    if ( cfg.getSink() == Sink.STDOUT && writer != null ) {
+      // stdout now ends in the middle of a COPY (and a gzip member), with no commit. The next
+      // job's script would be loaded as data for this table, so nothing more goes to stdout;
+      // the other jobs carry on.
+      Main.log.println( "Output to stdout for " + cfg.getTarget() + " is incomplete; no more work items will be written to stdout." );
+      Main.stopStdout();
+    }
+  }
+
+  private void openOutput() throws Exception {
+
+    // a work file that gets renamed when done, or a stream that's read as we go
+    switch ( cfg.getSink() ) {
+      case STDOUT:
+        // a concatenation of gzip members is still a valid gzip stream, so one job after another works either way
+        os = new ChannelOutputStream( new FileOutputStream( FileDescriptor.out ), arena, cfg.getWriteBuffer(), ChannelOutputStream.Fsync.NONE, false );
+        break;
+      case PIPE:
+        // Main made the pipe; this blocks until something opens the other end for reading
+        os = new ChannelOutputStream( new FileOutputStream( new File( cfg.getOutPath() ) ),
+            arena, cfg.getWriteBuffer(), ChannelOutputStream.Fsync.NONE, true );
+        break;
+      default:
+        workFile = new File( cfg.getOutPath() + ".work" );
+        if ( workFile.exists() )
+          workFile.delete();
+        os = new ChannelOutputStream( workFile, arena, cfg.getWriteBuffer(), cfg.getFsync() );
+        break;
+    }
+  }
 
-    // setup the output (work) file
-    final File workFile = new File( cfg.getOutFile() + ".sql.gz.work" );
-    if ( workFile.exists() )
-      workFile.delete();
+  private void step2() throws Exception {
 
-    // buffer > writer > gzip > buffer > file (double buffering does make a difference)
-    writer = new BufferedWriter( new OutputStreamWriter( new GZIPOutputStream( new BufferedOutputStream( new FileOutputStream( workFile ) ) ) ) );
+    // buffer > writer > gzip > large aligned buffer > file channel (double buffering does make a difference)
+    writer = new BufferedWriter( new OutputStreamWriter( cfg.isCompress() ? new GZIPOutputStream( os, 65536 ) : os ) );
 
     // assemble some of the file header (continued on step3)
     writer.write( "\n-- output file from OracleExp-PostgresImp --\n\n" );
@@ -122,19 +199,17 @@ public class Job implements Runnable {
     // run the query...
     step3();
 
-    lock.lock();
-    try {
-      writer.write( "\\.\ncommit;\n\\echo . done\n" );
-      writer.flush();
-      writer.close();
-    } finally {
-      lock.unlock();
-    }
+    writer.write( "\\.\ncommit;\n\\echo . done\n" );
+    writer.flush();
+    writer.close();
 
     endTime = new DateTime();
 
+    if ( workFile == null )
+      return;
+
     // rename work file to final filename
-    final File outFile = new File( cfg.getOutFile() + ".sql.gz" );
+    final File outFile = new File( cfg.getOutPath() );
 
     if ( outFile.exists() )
       outFile.delete();
@@ -143,87 +218,175 @@ public class Job implements Runnable {
 
   }
 
-  private void step3() throws Exception {
-    OracleStatement stmt = (OracleStatement) conn.createStatement();
-    // get a large chunk of LOB data at a time
-    stmt.setLobPrefetchSize( 32768 );
-    // get a good chunk of row data at a time
-    stmt.setFetchSize( 250 );
-    // maybe not necessary, but...
-    stmt.setRowPrefetch( 250 );
+  static File makeFifo( final File fifo ) throws Exception {
+    // an ordinary file left over from an earlier run would just be overwritten, not read
+    if ( fifo.isFile() )
+      fifo.delete();
+
+    if ( !fifo.exists() ) {
+      Process p = new ProcessBuilder( "mkfifo", fifo.getPath() ).redirectErrorStream( true ).start();
+      if ( p.waitFor() != 0 )
+        throw new IOException( "Unable to create named pipe " + fifo.getPath() );
+    }
+    return fifo;
+  }
 
+  private void step3() throws Exception {
     startTime = new DateTime();
-    ResultSet rs = stmt.executeQuery( cfg.getQuery() );
 
-    // metadata used to specify the column names
-    // for the copy command
-    ResultSetMetaData rsmd = rs.getMetaData();
-    int colCount = rsmd.getColumnCount();
+    // synthetic work items generate their own rows; everything else queries Oracle
+    final RowSource src;
+    if ( cfg.getSynthetic() != null )
+      src = new SyntheticRowSource( cfg.getSynthetic() );
+    else
+      src = new OracleRowSource( conn, cfg.getQuery() );
+
+    try {
+      step4( src );
+    } finally {
+      src.close();
+    }
+
+  }
+
+  private void step4( final RowSource src ) throws Exception {
+    // the column names for the copy command
+    String[] labels = src.getColumnLabels();
+    int colCount = labels.length;
     String comma = null;
 
     writer.write( "COPY " );
     writer.write( cfg.getTarget() );
     writer.write( " (" );
-    for ( int i = 1; i <= colCount; i++ ) {
+    for ( int i = 0; i < colCount; i++ ) {
       if ( comma == null )
         comma = ", ";
       else
         writer.write( comma );
 
-      writer.write( rsmd.getColumnLabel( i ) );
+      writer.write( labels[i] );
     }
 
     writer.write( ") FROM stdin;\n" );
 
-    // 25k queued messages is probably quite sufficient.
-    results = new LinkedBlockingQueue<Future<Integer>>( 25000 );
+    // caches for low-cardinality columns; each one turns itself off if it isn't helping
+    ColumnCache[] caches = null;
+    if ( cfg.isValueCache() ) {
+      caches = new ColumnCache[colCount];
+      for ( int i = 0; i < colCount; i++ ) {
+        caches[i] = new ColumnCache();
+      }
+    }
+
+    // batches in the order they were read; the writer thread takes them from here
+    results = new LinkedBlockingQueue<Formatter>();
 
-    // fire off a thread to consume the results queue
-    // the only thing this does is indicate when the queue is
-    // finished processing. (It gets the number 1)
-    final Timer tmr = new Timer();
-    tmr.schedule( new TimerTask() {
+    final Thread writerThread = new Thread( new Runnable() {
       @Override
       public void run() {
-
-        int y = 0;
-        do {
-          try {
-            // take() blocks until a message is available
-            y = results.take().get();
-          } catch ( InterruptedException e ) {
-            e.printStackTrace();
-          } catch ( ExecutionException e ) {
-            e.printStackTrace();
-          }
-        } while ( y != 1 );
-        stopFlag = true;
+        writeResults();
       }
-    }, 100 );
-
-    // process rows; gather the column values into
-    // the column array, and pass the writer, array, and semaphore
-    // to the formatter-thread-pool. The only reason for the
-    // results queue is to determine that we are done.
-    while ( rs.next() ) {
-      rowCount++;
-      Object[] cols = new Object[colCount];
-      for ( int i = 1, j = 0; j < colCount; i++, j++ ) {
-        cols[j] = rs.getObject( i );
+    }, "writer " + cfg.getTarget() );
+    writerThread.start();
+
+    // process rows; gather the column values into a batch of records and pass it
+    // to the formatter-thread-pool. Only a share of the pool's worth of batches
+    // is out at any time, so no job can fill the pool up at the expense of the others.
+    activeJobs.incrementAndGet();
+    try {
+      Object[] batch = arena.acquireRows( BATCH * colCount );
+      int n = 0;
+      int limit = batchRows();
+      while ( writeFailure == null && src.next( batch, n * colCount ) ) {
+        rowCount++;
+        if ( ++n == limit ) {
+          submit( new Formatter( batch, n, colCount, caches, arena ) );
+          batch = arena.acquireRows( BATCH * colCount );
+          n = 0;
+          limit = batchRows();
+        }
       }
-      results.put( fmtThreadPool.submit( new Formatter( writer, cols, lock ) ) );
+      if ( n > 0 )
+        submit( new Formatter( batch, n, colCount, caches, arena ) );
+      else
+        arena.releaseRows( batch );
+    } finally {
+      activeJobs.decrementAndGet();
+      // indicate we are done, and wait for the writer to catch up
+      results.put( DONE );
+      writerThread.join();
     }
 
-    // indicate we are done with NULL values
-    results.put( fmtThreadPool.submit( new Formatter( null, null, null ) ) );
+    if ( writeFailure != null )
+      throw writeFailure;
+
+  }
+
+  // enough records for about BATCH_CHARS of output; one at a time until we know how wide they are
+  private int batchRows() {
+    long records = recordsWritten;
+    if ( records == 0 )
+      return 1;
+    long perRecord = Math.max( 1L, charsWritten / records );
+    return (int) Math.max( 1L, Math.min( BATCH, BATCH_CHARS / perRecord ) );
+  }
 
-    // wait for the results to be consumed.
-    while ( !stopFlag ) {
-      Thread.sleep( 100 );
+  // wait until this job is below its share of the pool; the share grows as other jobs finish
+  private void submit( final Formatter f ) throws InterruptedException {
+    synchronized ( this ) {
+      while ( inFlight >= Math.max( 1, 2 * fmtThreadPool.getParallelism() / Math.max( 1, activeJobs.get() ) ) ) {
+        wait( 100 );
+      }
+      inFlight++;
     }
+    results.put( f );
+    fmtThreadPool.submit( f );
+  }
 
-    tmr.cancel();
+  // runs on the writer thread: each batch's buffers in turn, then the next batch
+  private void writeResults() {
+    char[] chunk = arena.acquireChars();
+    try {
+      Formatter f;
+      long chars = 0;
+      long records = 0;
+      while ( ( f = results.take() ) != DONE ) {
+        StringBuilder sb;
+        while ( ( sb = f.take() ) != Formatter.END ) {
+          chars += sb.length();
+          // after a failure keep taking buffers so the formatters can finish
+          if ( writeFailure == null ) {
+            try {
+              write( sb, chunk );
+            } catch ( IOException e ) {
+              writeFailure = e;
+            }
+          }
+          arena.releaseBuilder( sb );
+        }
+        records += f.getRows();
+        charsWritten = chars;
+        recordsWritten = records;
+        synchronized ( this ) {
+          inFlight--;
+          notifyAll();
+        }
+      }
+    } catch ( InterruptedException e ) {
+      e.printStackTrace();
+    } finally {
+      arena.releaseChars( chunk );
+    }
+  }
 
+  // copy out a chunk at a time; sb.toString() would make a new String every time
+  private void write( final StringBuilder sb, final char[] chunk ) throws IOException {
+    int len = sb.length();
+    for ( int pos = 0; pos < len; pos += chunk.length ) {
+      int n = Math.min( chunk.length, len - pos );
+      sb.getChars( pos, pos + n, chunk, 0 );
+      writer.write( chunk, 0, n );
+    }
   }
 
 }
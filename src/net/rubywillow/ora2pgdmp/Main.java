@@ -2,17 +2,26 @@ package net.rubywillow.ora2pgdmp;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class Main {
 
     public static AtomicLong recCount = new AtomicLong(  );
+    // progress and job messages; switched to stderr when a job streams to stdout
+    public static volatile PrintStream log = System.out;
     private long lastRecCount = 0;
+    // stdout jobs run here, one after another; shut down if one of them fails part way through
+    private static ExecutorService stdoutThread;
+    private static volatile boolean stdoutFailed = false;
     private static final String format = "%,12d";
 
     public Main() {
@@ -21,7 +30,7 @@ public class Main {
             @Override
             public void run() {
                 long tmp = recCount.get();
-                System.out.print( String.format( format, tmp-lastRecCount )  + "\r");
+                log.print( String.format( format, tmp-lastRecCount )  + "\r");
                 lastRecCount = tmp;
             }
         }, 1000, 1000 );
@@ -34,29 +43,63 @@ public class Main {
     private void run( String[] args ) throws Exception {
         // load configuration
         Config cfg = new Config( args[0] );
+        if ( cfg.usesStdout() )
+            log = System.err;
+
+        // the script starts a reader on every named pipe at once, so they must all exist before
+        // it is written, not just the ones for the jobs that happen to be running
+        for ( Config.Individual icfg : cfg.getIndcfgs() ) {
+            if ( icfg.getSink() == Job.Sink.PIPE )
+                Job.makeFifo( new File( icfg.getOutPath() ) );
+        }
+
+        // log in to Oracle up front; jobs share these sessions
+        final ConnectionPool pool = new ConnectionPool( cfg );
 
         // start thread pools
         final ExecutorService queryThreads = Executors.newFixedThreadPool( cfg.getNumSessions() );
+        // stdout is a single stream, so jobs using it run one after another, in configuration
+        // order, on a thread of their own; they don't tie up the query threads while they wait
+        stdoutThread = Executors.newSingleThreadExecutor();
+
+        // one work-stealing pool formats records for every job, so whatever
+        // jobs are still running share all of the encoder threads between them
+        final ForkJoinPool fmtThreads = new ForkJoinPool( cfg.getNumEncoders(),
+            ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true );
+
+        // buffers on the encode/write path are recycled between records and jobs
+        final BufferArena arena = new BufferArena( cfg.isOffHeap() );
 
         StringBuilder sb = new StringBuilder();
 
         sb.append( "#!/usr/bin/env sh\n" );
+        boolean pipes = false;
 
         for ( int i = 0; i < cfg.getIndcfgs().length; i++ ) {
             Config.Individual icfg = cfg.getIndcfgs()[i];
 
-            // create job and pass it to the thread pool
-            queryThreads.execute( new Job( icfg ) );
+            // create job and pass it to the thread pool; stdout has no file to load from
+            if ( icfg.getSink() == Job.Sink.STDOUT ) {
+                try {
+                    stdoutThread.execute( new Job( icfg, pool, fmtThreads, arena ) );
+                } catch ( RejectedExecutionException e ) {
+                    // an earlier stdout job has already failed
+                    log.println( "Skipping " + icfg.getTarget() + ": output to stdout is incomplete" );
+                }
+                continue;
+            }
+            queryThreads.execute( new Job( icfg, pool, fmtThreads, arena ) );
 
             // create shell script item for this job
+
             if ( icfg.getPgpassword() != null ) {
                 sb.append( "PGPASSWORD=\"" );
                 sb.append( icfg.getPgpassword() );
                 sb.append( "\"\n" );
             }
-            sb.append( "gunzip -c " );
-            sb.append( icfg.getOutFile() );
-            sb.append( ".sql.gz | psql --quiet" );
+            sb.append( icfg.isCompress() ? "gunzip -c " : "cat " );
+            sb.append( icfg.getOutPath() );
+            sb.append( " | psql --quiet" );
             if ( icfg.getPghost() != null ) {
                 sb.append( " --host=" );
                 sb.append( icfg.getPghost() );
@@ -73,11 +116,17 @@ public class Main {
                 sb.append( " --username=" );
                 sb.append( icfg.getPgusername() );
             }
+            // named pipes are read at the same time they are written, so load them all in parallel
+            if ( icfg.getSink() == Job.Sink.PIPE ) {
+                sb.append( " &" );
+                pipes = true;
+            }
             sb.append( "\n" );
-
-            Thread.sleep( 250 );
         }
 
+        if ( pipes )
+            sb.append( "wait\n" );
+
         // write script file
         File f = new File( cfg.getOutFile() + ".sh" );
         OutputStreamWriter osw = new FileWriter( f );
@@ -89,12 +138,36 @@ public class Main {
         // wait for queries to finish
         queryThreads.shutdown();
         queryThreads.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS );
-
-        System.out.println();
-        System.out.println( "--- program complete ---" );
+        stdoutThread.shutdown();
+        stdoutThread.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS );
+        // the jobs are done, but make sure every formatter has handed its buffers back before reporting
+        fmtThreads.shutdown();
+        fmtThreads.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS );
+        pool.close();
+
+        log.println();
+        arena.report( log );
+        if ( stdoutFailed ) {
+            log.println( "--- program complete; output to stdout is incomplete ---" );
+            System.exit( 1 );
+        }
+        log.println( "--- program complete ---" );
 
         // kill this program, just in case something got mangled
         System.exit( 0 );
     }
 
+    // A stdout job failed with its COPY half written. Whatever follows on stdout would be loaded as
+    // part of it, so the stdout jobs still waiting are dropped and stdout is closed, letting the reader
+    // see the end; file and pipe jobs carry on, and the exit status tells the caller.
+    public static void stopStdout() {
+        stdoutFailed = true;
+        List<Runnable> skipped = stdoutThread.shutdownNow();
+        // that interrupted the failed job too (it runs on stdoutThread); it's finishing anyway
+        Thread.interrupted();
+        System.out.close();
+        if ( !skipped.isEmpty() )
+            log.println( skipped.size() + " work item(s) for stdout will not be run" );
+    }
+
 }
@@ -0,0 +1,58 @@
+package net.rubywillow.ora2pgdmp;
+
+import oracle.jdbc.OracleConnection;
+import oracle.jdbc.OracleStatement;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+
+public class OracleRowSource implements RowSource {
+
+  private final OracleStatement stmt;
+  private final ResultSet rs;
+  private final int colCount;
+
+  public OracleRowSource( final OracleConnection conn, final String query ) throws Exception {
+    super();
+    stmt = (OracleStatement) conn.createStatement();
+    // get a large chunk of LOB data at a time
+    stmt.setLobPrefetchSize( 32768 );
+    // get a good chunk of row data at a time
+    stmt.setFetchSize( 250 );
+    // maybe not necessary, but...
+    stmt.setRowPrefetch( 250 );
+
+    rs = stmt.executeQuery( query );
+    colCount = rs.getMetaData().getColumnCount();
+  }
+
+  @Override
+  public String[] getColumnLabels() throws Exception {
+    // metadata used to specify the column names
+    // for the copy command
+    ResultSetMetaData rsmd = rs.getMetaData();
+    String[] labels = new String[ colCount ];
+    for ( int i = 1, j = 0; j < colCount; i++, j++ ) {
+      labels[j] = rsmd.getColumnLabel( i );
+    }
+    return labels;
+  }
+
+  @Override
+  public boolean next( final Object[] cols, final int offset ) throws Exception {
+    if ( !rs.next() )
+      return false;
+    for ( int i = 1, j = offset; i <= colCount; i++, j++ ) {
+      cols[j] = rs.getObject( i );
+    }
+    return true;
+  }
+
+  @Override
+  public void close() throws Exception {
+    // the session goes back to the pool, so don't leave the cursor open
+    rs.close();
+    stmt.close();
+  }
+
+}
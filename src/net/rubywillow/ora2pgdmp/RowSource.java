@@ -0,0 +1,21 @@
+package net.rubywillow.ora2pgdmp;
+
+/*
+    Where a Job gets its rows from. Normally this is an Oracle query
+    (OracleRowSource), but the rest of the pipeline - formatting, compression,
+    and writing - doesn't care, which lets SyntheticRowSource drive it without
+    a database.
+
+    Column values must be types the Formatter understands.
+*/
+public interface RowSource {
+
+  // names used in the COPY column list
+  String[] getColumnLabels() throws Exception;
+
+  // fill cols[offset] onward with the next row; false when there are no more rows
+  boolean next( Object[] cols, int offset ) throws Exception;
+
+  void close() throws Exception;
+
+}
@@ -0,0 +1,179 @@
+package net.rubywillow.ora2pgdmp;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import javax.sql.rowset.serial.SerialBlob;
+import javax.sql.rowset.serial.SerialClob;
+
+public class SyntheticRowSource implements RowSource {
+
+  /*
+      Generates rows without a database, for soak tests and capacity planning
+      of the format/compress/write pipeline. Each column gets a fixed set of
+      pre-built values up front (the "distinct" setting), and rows are assembled
+      by picking from those with a cheap random number generator and applying
+      the null ratio. That keeps the source itself well out of the way: it can
+      produce millions of rows per second, so whatever is slow is the pipeline.
+  */
+
+  public enum Type {
+    VARCHAR, NUMBER, DATE, CLOB, BLOB
+  }
+
+  public static class Column {
+    private final String name;
+    private final Type type;
+    private final int width;
+    private final int scale;
+    private final double nullRatio;
+    private final double specialRate;
+    private final int distinct;
+
+    public Column( final String name_, final Type type_, final int width_, final int scale_,
+                   final double nullRatio_, final double specialRate_, final int distinct_ ) {
+      name = name_;
+      type = type_;
+      width = width_;
+      scale = scale_;
+      nullRatio = nullRatio_;
+      specialRate = specialRate_;
+      distinct = distinct_;
+    }
+  }
+
+  public static class Spec {
+    private final long rows;
+    private final long seed;
+    private final Column[] columns;
+
+    public Spec( final long rows_, final long seed_, final Column[] columns_ ) {
+      rows = rows_;
+      seed = seed_;
+      columns = columns_;
+    }
+  }
+
+  // don't hold more than this many bytes of pre-built LOB values per column (CLOB characters are two bytes)
+  private final static int LOB_VARIANT_BYTES = 67108864;
+
+  private final static char[] plainChars =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789 .,-_".toCharArray();
+  private final static char[] specialChars = { '\t', '\n', '\r', '\\' };
+
+  // 2000-01-01 00:00:00 UTC, and roughly 30 years of seconds after it
+  private final static long baseMillis = 946684800000L;
+  private final static long dateRangeSeconds = 946080000L;
+
+  private final Spec spec;
+  private final Object[][] variants;
+  private long produced = 0;
+  private long rnd;
+
+  public SyntheticRowSource( final Spec spec_ ) throws SQLException {
+    super();
+    spec = spec_;
+    rnd = spec.seed == 0 ? 0x9E3779B97F4A7C15L : spec.seed;
+
+    variants = new Object[ spec.columns.length ][];
+    for ( int c = 0; c < spec.columns.length; c++ ) {
+      Column col = spec.columns[c];
+      int n = Math.max( 1, col.distinct );
+      if ( col.type == Type.CLOB )
+        n = Math.max( 1, Math.min( n, LOB_VARIANT_BYTES / 2 / Math.max( 1, col.width ) ) );
+      else if ( col.type == Type.BLOB )
+        n = Math.max( 1, Math.min( n, LOB_VARIANT_BYTES / Math.max( 1, col.width ) ) );
+
+      variants[c] = new Object[ n ];
+      for ( int v = 0; v < n; v++ ) {
+        variants[c][v] = makeValue( col );
+      }
+    }
+  }
+
+  @Override
+  public String[] getColumnLabels() {
+    String[] labels = new String[ spec.columns.length ];
+    for ( int c = 0; c < labels.length; c++ ) {
+      labels[c] = spec.columns[c].name;
+    }
+    return labels;
+  }
+
+  @Override
+  public boolean next( final Object[] cols, final int offset ) {
+    if ( produced >= spec.rows )
+      return false;
+    produced++;
+
+    for ( int c = 0; c < variants.length; c++ ) {
+      if ( spec.columns[c].nullRatio > 0 && nextDouble() < spec.columns[c].nullRatio )
+        cols[offset + c] = null;
+      else
+        cols[offset + c] = variants[c][ nextInt( variants[c].length ) ];
+    }
+    return true;
+  }
+
+  @Override
+  public void close() {
+  }
+
+  // LOBs come back as Clob/Blob, like they do from Oracle, so they take the same streaming path in Formatter
+  private Object makeValue( final Column col ) throws SQLException {
+    switch ( col.type ) {
+      case VARCHAR:
+        // somewhere between half and all of the declared width
+        return makeString( col.width - nextInt( col.width / 2 + 1 ), col.specialRate );
+      case CLOB:
+        return new SerialClob( makeString( col.width, col.specialRate ).toCharArray() );
+      case NUMBER:
+        StringBuilder digits = new StringBuilder( col.width + 1 );
+        if ( nextInt( 2 ) == 0 )
+          digits.append( '-' );
+        for ( int i = 0; i < Math.max( 1, col.width ); i++ ) {
+          digits.append( (char) ( '0' + nextInt( 10 ) ) );
+        }
+        return new BigDecimal( new BigInteger( digits.toString() ), col.scale );
+      case DATE:
+        return new Timestamp( baseMillis + ( (long) ( nextDouble() * dateRangeSeconds ) ) * 1000L );
+      case BLOB:
+        byte[] bytes = new byte[ col.width ];
+        for ( int i = 0; i < bytes.length; i++ ) {
+          bytes[i] = (byte) nextLong();
+        }
+        return new SerialBlob( bytes );
+      default:
+        throw new IllegalArgumentException( "Unknown synthetic column type: " + col.type );
+    }
+  }
+
+  private String makeString( final int length, final double specialRate ) {
+    char[] chars = new char[ length ];
+    for ( int i = 0; i < length; i++ ) {
+      if ( specialRate > 0 && nextDouble() < specialRate )
+        chars[i] = specialChars[ nextInt( specialChars.length ) ];
+      else
+        chars[i] = plainChars[ nextInt( plainChars.length ) ];
+    }
+    return new String( chars );
+  }
+
+  // xorshift64*; plenty random for test data and much cheaper than java.util.Random
+  private long nextLong() {
+    rnd ^= rnd >>> 12;
+    rnd ^= rnd << 25;
+    rnd ^= rnd >>> 27;
+    return rnd * 0x2545F4914F6CDD1DL;
+  }
+
+  private int nextInt( final int bound ) {
+    return (int) ( ( nextLong() >>> 33 ) % bound );
+  }
+
+  private double nextDouble() {
+    return ( nextLong() >>> 11 ) * 0x1.0p-53;
+  }
+
+}